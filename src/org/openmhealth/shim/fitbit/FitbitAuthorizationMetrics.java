@@ -0,0 +1,127 @@
+package org.openmhealth.shim.fitbit;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openmhealth.reference.exception.OmhException;
+
+/**
+ * Publishes the metrics of the pending authorization store and the token
+ * exchanger over JMX, under {@link #OBJECT_NAME}.
+ */
+public class FitbitAuthorizationMetrics
+    implements FitbitAuthorizationMetricsMBean {
+    /**
+     * The name the metrics are registered under.
+     */
+    public static final String OBJECT_NAME =
+        "org.openmhealth.shim.fitbit:type=AuthorizationMetrics";
+
+    private final FitbitPendingAuthorizationStore pendingStore;
+    private final FitbitTokenExchanger tokenExchanger;
+
+    /**
+     * @param pendingStore
+     *        The pending authorization store.
+     *
+     * @param tokenExchanger
+     *        The token exchanger.
+     */
+    public FitbitAuthorizationMetrics(
+        final FitbitPendingAuthorizationStore pendingStore,
+        final FitbitTokenExchanger tokenExchanger) {
+        if (pendingStore == null) {
+            throw new OmhException("The pending store is null.");
+        }
+        if (tokenExchanger == null) {
+            throw new OmhException("The token exchanger is null.");
+        }
+
+        this.pendingStore = pendingStore;
+        this.tokenExchanger = tokenExchanger;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing any
+     * registered by an earlier instance of the shim.
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        }
+        catch(JMException e) {
+            throw new OmhException(
+                "Unable to register the Fitbit authorization metrics.", e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, so that it no
+     * longer holds on to the shim.
+     */
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch(JMException e) {
+            throw new OmhException(
+                "Unable to unregister the Fitbit authorization metrics.", e);
+        }
+    }
+
+    public int getPendingAuthorizations() {
+        return pendingStore.getPendingCount();
+    }
+
+    public long getExpiredAuthorizations() {
+        return pendingStore.getExpiredCount();
+    }
+
+    public long getRejectedAuthorizations() {
+        return pendingStore.getRejectedCount();
+    }
+
+    public int getExchangeBacklog() {
+        return tokenExchanger.getBacklog();
+    }
+
+    public int getExchangesInFlight() {
+        return tokenExchanger.getInFlightCount();
+    }
+
+    public long getCompletedExchanges() {
+        return tokenExchanger.getCompletedCount();
+    }
+
+    public long getFailedExchanges() {
+        return tokenExchanger.getFailedCount();
+    }
+
+    public long getRejectedExchanges() {
+        return tokenExchanger.getRejectedCount();
+    }
+
+    public double getMeanExchangeLatencyMillis() {
+        return tokenExchanger.getMeanLatencyMillis();
+    }
+
+    public double getMaxExchangeLatencyMillis() {
+        return tokenExchanger.getMaxLatencyMillis();
+    }
+
+    public double getEstimatedExchangeLatencyMillis() {
+        return tokenExchanger.getEstimatedLatencyMillis();
+    }
+}
@@ -0,0 +1,19 @@
+package org.openmhealth.shim.fitbit;
+
+/**
+ * The JMX view of the authorization metrics. See FitbitAuthorizationMetrics.
+ */
+public interface FitbitAuthorizationMetricsMBean {
+    public int getPendingAuthorizations();
+    public long getExpiredAuthorizations();
+    public long getRejectedAuthorizations();
+
+    public int getExchangeBacklog();
+    public int getExchangesInFlight();
+    public long getCompletedExchanges();
+    public long getFailedExchanges();
+    public long getRejectedExchanges();
+    public double getMeanExchangeLatencyMillis();
+    public double getMaxExchangeLatencyMillis();
+    public double getEstimatedExchangeLatencyMillis();
+}
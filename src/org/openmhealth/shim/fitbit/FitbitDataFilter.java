@@ -0,0 +1,187 @@
+package org.openmhealth.shim.fitbit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openmhealth.reference.domain.ColumnList;
+import org.openmhealth.shim.exception.ShimDataException;
+
+/**
+ * Server-side predicates for FitbitShim.getData. Days whose value doesn't
+ * match are left out of the result instead of being returned and thrown away
+ * by the client.
+ *
+ * Shim.getData has no parameter for predicates, so they are passed as
+ * children of the reserved {@link #COLUMN} column of the column list, for
+ * example:
+ *
+ * <pre>
+ * column_list=value,where.min_1000,where.has_data
+ * </pre>
+ *
+ * The predicates are:
+ * <ul>
+ * <li>min_N: the value is at least N.</li>
+ * <li>max_N: the value is at most N.</li>
+ * <li>has_data: the day has data. Days with a missing or zero value, days
+ *     before the user joined Fitbit and, for data only devices record, days
+ *     after the user's devices last synced are left out.</li>
+ * </ul>
+ */
+public class FitbitDataFilter {
+    /**
+     * The column of the column list that holds the predicates.
+     */
+    public static final String COLUMN = "where";
+
+    private static final String PREDICATE_MIN = "min_";
+    private static final String PREDICATE_MAX = "max_";
+    private static final String PREDICATE_HAS_DATA = "has_data";
+
+    private final Double minValue;
+    private final Double maxValue;
+    private final boolean daysWithDataOnly;
+
+    /**
+     * @param minValue
+     *        The smallest value to return, inclusive, or null for no lower
+     *        bound.
+     *
+     * @param maxValue
+     *        The largest value to return, inclusive, or null for no upper
+     *        bound.
+     *
+     * @param daysWithDataOnly
+     *        Whether to leave out days without any recorded data.
+     */
+    public FitbitDataFilter(
+        final Double minValue,
+        final Double maxValue,
+        final boolean daysWithDataOnly) {
+        if (minValue != null && maxValue != null && minValue > maxValue) {
+            throw new ShimDataException(
+                "The minimum value is greater than the maximum value.");
+        }
+
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+        this.daysWithDataOnly = daysWithDataOnly;
+    }
+
+    /**
+     * Reads the predicates from a column list.
+     *
+     * @param columnList
+     *        The column list, or null.
+     *
+     * @return The filter, or null if the column list has no predicates.
+     *
+     * @throws ShimDataException
+     *         A predicate is unknown or its value isn't a number.
+     */
+    public static FitbitDataFilter fromColumnList(
+        final ColumnList columnList) {
+        if (columnList == null
+            || ! columnList.getChildren().contains(COLUMN)) {
+            return null;
+        }
+        ColumnList predicates = columnList.getChild(COLUMN);
+        if (predicates == null) {
+            return null;
+        }
+
+        Double minValue = null;
+        Double maxValue = null;
+        boolean daysWithDataOnly = false;
+        // The list splits its entries on dots, so decimal values are only
+        // whole again once the predicates are listed.
+        for (String predicate : predicates.toList()) {
+            if (PREDICATE_HAS_DATA.equals(predicate)) {
+                daysWithDataOnly = true;
+            } else if (predicate.startsWith(PREDICATE_MIN)) {
+                minValue = parseValue(predicate, PREDICATE_MIN);
+            } else if (predicate.startsWith(PREDICATE_MAX)) {
+                maxValue = parseValue(predicate, PREDICATE_MAX);
+            } else {
+                throw new ShimDataException(
+                    "Unknown predicate: " + COLUMN + "." + predicate);
+            }
+        }
+
+        FitbitDataFilter filter =
+            new FitbitDataFilter(minValue, maxValue, daysWithDataOnly);
+        return filter.isEmpty() ? null : filter;
+    }
+
+    /**
+     * Removes the predicates from a column list, leaving the columns to
+     * return.
+     *
+     * @param columnList
+     *        The column list, or null.
+     *
+     * @return The columns to return, or null for every column.
+     */
+    public static ColumnList projectionOf(final ColumnList columnList) {
+        if (columnList == null
+            || ! columnList.getChildren().contains(COLUMN)) {
+            return columnList;
+        }
+
+        List<String> columns = new ArrayList<String>();
+        for (String column : columnList.toList()) {
+            if (! column.equals(COLUMN)
+                && ! column.startsWith(COLUMN + ColumnList.COLUMN_SEPARATOR)) {
+                columns.add(column);
+            }
+        }
+        return columns.isEmpty() ? null : new ColumnList(columns);
+    }
+
+    public Double getMinValue() { return minValue; }
+    public Double getMaxValue() { return maxValue; }
+    public boolean isDaysWithDataOnly() { return daysWithDataOnly; }
+
+    /**
+     * @return Whether this filter can reject anything.
+     */
+    public boolean isEmpty() {
+        return minValue == null && maxValue == null && ! daysWithDataOnly;
+    }
+
+    /**
+     * Checks a single day's value against the predicates.
+     *
+     * @param value
+     *        The value, or NaN if Fitbit didn't report one.
+     *
+     * @return Whether the day should be returned.
+     */
+    public boolean accepts(final double value) {
+        if (Double.isNaN(value)) {
+            return isEmpty();
+        }
+        if (daysWithDataOnly && value == 0) {
+            return false;
+        }
+        if (minValue != null && value < minValue) {
+            return false;
+        }
+        if (maxValue != null && value > maxValue) {
+            return false;
+        }
+        return true;
+    }
+
+    private static Double parseValue(
+        final String predicate,
+        final String prefix) {
+        try {
+            return Double.valueOf(predicate.substring(prefix.length()));
+        }
+        catch(NumberFormatException e) {
+            throw new ShimDataException(
+                "Invalid predicate: " + COLUMN + "." + predicate, e);
+        }
+    }
+}
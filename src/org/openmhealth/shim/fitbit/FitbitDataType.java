@@ -0,0 +1,50 @@
+package org.openmhealth.shim.fitbit;
+
+import org.openmhealth.reference.exception.OmhException;
+
+/**
+ * Class to represent how to extract a given type of data point from the
+ * Fitbit API: the resource to fetch and the field of it to return.
+ */
+public class FitbitDataType<T> {
+    private final FitbitResource<T> resource;
+    private final FitbitFieldExtractor<T> field;
+    private final boolean isStandardMeasure;
+    private final String unit;
+
+    /**
+     * @param resource
+     *        The FitbitResource used to retrieve the data.
+     *
+     * @param field
+     *        The extractor for the individual field in the data.
+     *
+     * @param isStandardMeasure
+     *        Whether the data type is an Open mHealth standard measure.
+     *
+     * @param unit
+     *        The unit of a standard measure, or null.
+     */
+    public FitbitDataType(
+        final FitbitResource<T> resource,
+        final FitbitFieldExtractor<T> field,
+        final boolean isStandardMeasure,
+        final String unit) {
+        if (resource == null) {
+            throw new OmhException("The resource is null.");
+        }
+        if (field == null) {
+            throw new OmhException("The field is null.");
+        }
+
+        this.resource = resource;
+        this.field = field;
+        this.isStandardMeasure = isStandardMeasure;
+        this.unit = unit;
+    }
+
+    public FitbitResource<T> getResource() { return resource; }
+    public FitbitFieldExtractor<T> getField() { return field; }
+    public boolean isStandardMeasure() { return isStandardMeasure; }
+    public String getUnit() { return unit; }
+}
@@ -0,0 +1,279 @@
+package org.openmhealth.shim.fitbit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+import org.openmhealth.reference.exception.OmhException;
+
+/**
+ * Maps data type names, the last part of a schema ID, to the FitbitDataType
+ * that produces them.
+ *
+ * The data types are declared in properties files rather than in code. Each
+ * line has the form:
+ *
+ * <pre>
+ * name = resource.field[, standard[, unit]]
+ * </pre>
+ *
+ * where "standard" marks an Open mHealth standard measure with the given
+ * unit. Every copy of {@link #DECLARATIONS} on the class path is read, so a
+ * jar that adds a FitbitResource can declare its data types alongside it.
+ * The field extractor for each data type is looked up once, when it is
+ * registered.
+ */
+public class FitbitDataTypeRegistry {
+    /**
+     * The class path location of the data type declarations.
+     */
+    public static final String DECLARATIONS =
+        "org/openmhealth/shim/fitbit/data-types.properties";
+
+    /**
+     * The marker for a standard measure in a declaration.
+     */
+    private static final String STANDARD = "standard";
+
+    private final Map<String, FitbitResource<?>> resources =
+        new HashMap<String, FitbitResource<?>>();
+    private final Map<String, FitbitDataType<?>> dataTypes =
+        new HashMap<String, FitbitDataType<?>>();
+
+    /**
+     * Builds a registry with the built-in resources, the resources listed as
+     * services, and every data type declared on the class path.
+     *
+     * @param classLoader
+     *        The class loader to find resources and declarations with.
+     *
+     * @return The registry.
+     *
+     * @throws OmhException
+     *         A resource or declaration couldn't be loaded.
+     */
+    @SuppressWarnings("rawtypes")
+    public static FitbitDataTypeRegistry load(final ClassLoader classLoader) {
+        FitbitDataTypeRegistry registry = new FitbitDataTypeRegistry();
+
+        for (FitbitResource<?> resource : FitbitResources.builtIn()) {
+            registry.registerResource(resource);
+        }
+        try {
+            for (FitbitResource resource
+                : ServiceLoader.load(FitbitResource.class, classLoader)) {
+                registry.registerResource(resource);
+            }
+        }
+        catch(ServiceConfigurationError e) {
+            throw new OmhException("Unable to load a Fitbit resource.", e);
+        }
+
+        Enumeration<URL> urls;
+        try {
+            urls = classLoader.getResources(DECLARATIONS);
+        }
+        catch(IOException e) {
+            throw new OmhException(
+                "Unable to find the Fitbit data type declarations.", e);
+        }
+        // The same file can be reachable more than once, such as when the
+        // jar is on the class path twice or through a parent class loader.
+        Set<String> readUrls = new HashSet<String>();
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            if (readUrls.add(url.toExternalForm())) {
+                registry.registerDataTypes(readDeclarations(url));
+            }
+        }
+
+        return registry;
+    }
+
+    /**
+     * Adds a resource that data types can be declared against.
+     *
+     * @param resource
+     *        The resource.
+     */
+    public void registerResource(final FitbitResource<?> resource) {
+        if (resources.containsKey(resource.getName())) {
+            throw new OmhException(
+                "The Fitbit resource is already registered: "
+                + resource.getName());
+        }
+
+        resources.put(resource.getName(), resource);
+    }
+
+    /**
+     * Adds every data type in a set of declarations.
+     *
+     * @param declarations
+     *        The declarations, in the format described above.
+     */
+    public void registerDataTypes(final Properties declarations) {
+        for (String name : declarations.stringPropertyNames()) {
+            String[] parts = declarations.getProperty(name).split(",");
+            String field = parts[0].trim();
+
+            boolean isStandardMeasure = false;
+            String unit = null;
+            if (parts.length > 1) {
+                if (! STANDARD.equals(parts[1].trim())) {
+                    throw new OmhException(
+                        "Invalid Fitbit data type declaration: " + name);
+                }
+                isStandardMeasure = true;
+            }
+            if (parts.length > 2) {
+                unit = parts[2].trim();
+            }
+            if (parts.length > 3) {
+                throw new OmhException(
+                    "Invalid Fitbit data type declaration: " + name);
+            }
+
+            int separator = field.indexOf('.');
+            if (separator < 0) {
+                throw new OmhException(
+                    "Invalid Fitbit data type declaration: " + name);
+            }
+            registerDataType(
+                name,
+                field.substring(0, separator),
+                field.substring(separator + 1),
+                isStandardMeasure,
+                unit);
+        }
+    }
+
+    /**
+     * Adds a single data type. Declaring a data type again is allowed as long
+     * as the declaration is the same.
+     *
+     * @param name
+     *        The data type name.
+     *
+     * @param resourceName
+     *        The name of the resource to fetch.
+     *
+     * @param fieldName
+     *        The name of the field of the resource to return.
+     *
+     * @param isStandardMeasure
+     *        Whether the data type is an Open mHealth standard measure.
+     *
+     * @param unit
+     *        The unit of a standard measure, or null.
+     */
+    public void registerDataType(
+        final String name,
+        final String resourceName,
+        final String fieldName,
+        final boolean isStandardMeasure,
+        final String unit) {
+        FitbitResource<?> resource = resources.get(resourceName);
+        if (resource == null) {
+            throw new OmhException(
+                "Unknown Fitbit resource for " + name + ": " + resourceName);
+        }
+
+        FitbitDataType<?> dataType =
+            bind(name, resource, fieldName, isStandardMeasure, unit);
+
+        FitbitDataType<?> existing = dataTypes.get(name);
+        if (existing != null) {
+            if (existing.getResource() == dataType.getResource()
+                && existing.getField() == dataType.getField()
+                && existing.isStandardMeasure() == isStandardMeasure
+                && (unit == null
+                    ? existing.getUnit() == null
+                    : unit.equals(existing.getUnit()))) {
+                return;
+            }
+            throw new OmhException(
+                "The Fitbit data type is already registered differently: "
+                + name);
+        }
+
+        dataTypes.put(name, dataType);
+    }
+
+    /**
+     * Looks up a data type.
+     *
+     * @param name
+     *        The data type name.
+     *
+     * @return The data type, or null if there is no such data type.
+     */
+    public FitbitDataType<?> getDataType(final String name) {
+        return dataTypes.get(name);
+    }
+
+    /**
+     * @return The names of all of the registered data types.
+     */
+    public Set<String> getDataTypeNames() {
+        return Collections.unmodifiableSet(dataTypes.keySet());
+    }
+
+    /**
+     * Binds a data type to its resource's field extractor.
+     */
+    private static <T> FitbitDataType<T> bind(
+        final String name,
+        final FitbitResource<T> resource,
+        final String fieldName,
+        final boolean isStandardMeasure,
+        final String unit) {
+        FitbitFieldExtractor<T> field = resource.getField(fieldName);
+        if (field == null) {
+            throw new OmhException(
+                "Unknown Fitbit field for " + name + ": "
+                + resource.getName() + "." + fieldName);
+        }
+
+        return
+            new FitbitDataType<T>(resource, field, isStandardMeasure, unit);
+    }
+
+    /**
+     * Reads a declarations file.
+     */
+    private static Properties readDeclarations(final URL url) {
+        Properties declarations = new Properties();
+        InputStream input = null;
+        try {
+            input = url.openStream();
+            declarations.load(input);
+        }
+        catch(IOException e) {
+            throw new OmhException(
+                "Unable to read the Fitbit data type declarations: " + url,
+                e);
+        }
+        finally {
+            if (input != null) {
+                try {
+                    input.close();
+                }
+                catch(IOException e) {
+                    // Nothing left to read from it.
+                }
+            }
+        }
+
+        return declarations;
+    }
+}
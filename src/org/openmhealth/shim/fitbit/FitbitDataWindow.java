@@ -0,0 +1,121 @@
+package org.openmhealth.shim.fitbit;
+
+import java.util.List;
+
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.openmhealth.shim.exception.ShimDataException;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.FitbitApiClientAgent;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.client.service.FitbitAPIClientService;
+import com.fitbit.api.common.model.devices.Device;
+import com.fitbit.api.common.model.user.UserInfo;
+
+/**
+ * The range of days, as days since the epoch, that a Fitbit account can have
+ * data for: from the day the user joined Fitbit to the day one of their
+ * devices last synced.
+ */
+public class FitbitDataWindow {
+    /**
+     * The earliest day anyone can have data for, used when Fitbit doesn't
+     * say when the user joined. The first trackers shipped in 2009.
+     */
+    private static final LocalDate FIRST_POSSIBLE_DAY =
+        new LocalDate(2009, 1, 1);
+
+    private final long firstDay;
+    private final long lastSyncDay;
+
+    /**
+     * @param firstDay
+     *        The day the user joined Fitbit.
+     *
+     * @param lastSyncDay
+     *        The day one of the user's devices last synced, or
+     *        Long.MAX_VALUE if that isn't known.
+     */
+    public FitbitDataWindow(final long firstDay, final long lastSyncDay) {
+        this.firstDay = firstDay;
+        this.lastSyncDay = lastSyncDay;
+    }
+
+    public long getFirstDay() { return firstDay; }
+    public long getLastSyncDay() { return lastSyncDay; }
+
+    /**
+     * Fetches the data window of a user from Fitbit.
+     *
+     * @param client
+     *        The Fitbit API client.
+     *
+     * @param localUserDetail
+     *        The Fitbit user.
+     *
+     * @return The user's data window.
+     */
+    public static FitbitDataWindow fetch(
+        final FitbitAPIClientService<FitbitApiClientAgent> client,
+        final LocalUserDetail localUserDetail) {
+        UserInfo userInfo;
+        List<Device> devices;
+        try {
+            userInfo = client.getClient().getUserInfo(localUserDetail);
+            devices = client.getClient().getDevices(localUserDetail);
+        }
+        catch(FitbitAPIException e) {
+            throw new ShimDataException("Fitbit API error", e);
+        }
+
+        LocalDate memberSince = userInfo.getMemberSince();
+        long firstDay =
+            epochDay(
+                (memberSince == null) ? FIRST_POSSIBLE_DAY : memberSince);
+
+        // Devices that have never synced, or whose sync time can't be read,
+        // leave the end of the window open rather than hiding data.
+        long lastSyncDay = Long.MIN_VALUE;
+        if (devices != null) {
+            for (Device device : devices) {
+                String lastSyncTime = device.getLastSyncTime();
+                if (lastSyncTime == null || lastSyncTime.length() < 10) {
+                    lastSyncDay = Long.MAX_VALUE;
+                    break;
+                }
+                try {
+                    lastSyncDay =
+                        Math.max(
+                            lastSyncDay,
+                            epochDay(
+                                new LocalDate(
+                                    lastSyncTime.substring(0, 10))));
+                }
+                catch(IllegalArgumentException e) {
+                    lastSyncDay = Long.MAX_VALUE;
+                    break;
+                }
+            }
+        }
+        if (lastSyncDay == Long.MIN_VALUE) {
+            lastSyncDay = Long.MAX_VALUE;
+        }
+
+        return new FitbitDataWindow(firstDay, lastSyncDay);
+    }
+
+    /**
+     * Converts a date to the number of days since the epoch.
+     */
+    private static long epochDay(final LocalDate date) {
+        long millis =
+            date.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis();
+        long day = millis / DateTimeConstants.MILLIS_PER_DAY;
+        if (millis < 0 && day * DateTimeConstants.MILLIS_PER_DAY != millis) {
+            day--;
+        }
+        return day;
+    }
+}
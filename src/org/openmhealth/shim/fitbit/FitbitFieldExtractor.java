@@ -0,0 +1,56 @@
+package org.openmhealth.shim.fitbit;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Extracts a single field from the summary a FitbitResource fetches. Each
+ * field is bound to its own extractor when the FitbitDataTypeRegistry is
+ * loaded, so reading a value is a direct getter call returning a primitive.
+ */
+public abstract class FitbitFieldExtractor<T> {
+    private final boolean isInteger;
+
+    /**
+     * @param isInteger
+     *        Whether the field is a whole number and should be written to
+     *        JSON as one.
+     */
+    public FitbitFieldExtractor(final boolean isInteger) {
+        this.isInteger = isInteger;
+    }
+
+    /**
+     * Reads the field.
+     *
+     * @param summary
+     *        The summary to read the field from.
+     *
+     * @return The value of the field, or NaN if Fitbit didn't report one.
+     */
+    public abstract double valueOf(T summary);
+
+    /**
+     * Writes a value read by valueOf into the given JSON object.
+     *
+     * @param value
+     *        The value.
+     *
+     * @param node
+     *        The JSON object to write the value into.
+     *
+     * @param key
+     *        The key to write the value under.
+     */
+    public void putValue(
+        final double value,
+        final ObjectNode node,
+        final String key) {
+        if (Double.isNaN(value)) {
+            node.putNull(key);
+        } else if (isInteger) {
+            node.put(key, (long) value);
+        } else {
+            node.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.openmhealth.shim.fitbit;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmhealth.reference.exception.OmhException;
+
+import com.fitbit.api.client.FitbitApiCredentialsCache;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.model.APIResourceCredentials;
+
+/**
+ * A credentials cache for OAuth flows that are still in progress. Unlike the
+ * Fitbit lib's map-backed cache, every entry expires after a fixed time and
+ * the number of entries is capped, so users who start authorizing but never
+ * come back cannot grow the heap without bound.
+ */
+public class FitbitPendingAuthorizationStore
+    implements FitbitApiCredentialsCache {
+
+    /**
+     * A single pending authorization and the time it expires.
+     */
+    private static class Entry {
+        private final LocalUserDetail localUserDetail;
+        private final APIResourceCredentials credentials;
+        private final long expiresAt;
+
+        public Entry(
+            final LocalUserDetail localUserDetail,
+            final APIResourceCredentials credentials,
+            final long expiresAt) {
+            this.localUserDetail = localUserDetail;
+            this.credentials = credentials;
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean isExpired(final long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    private final ConcurrentMap<LocalUserDetail, Entry> entriesByUser =
+        new ConcurrentHashMap<LocalUserDetail, Entry>();
+    private final ConcurrentMap<String, Entry> entriesByTempToken =
+        new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The earliest time the next sweep for expired entries should run.
+     */
+    private final AtomicLong nextPurge = new AtomicLong();
+
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param ttlMillis
+     *        How long a pending authorization is kept, in milliseconds.
+     *
+     * @param maxEntries
+     *        The maximum number of pending authorizations.
+     */
+    public FitbitPendingAuthorizationStore(
+        final long ttlMillis,
+        final int maxEntries) {
+        if (ttlMillis <= 0) {
+            throw new OmhException("The TTL must be positive.");
+        }
+        if (maxEntries <= 0) {
+            throw new OmhException("The maximum entries must be positive.");
+        }
+
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public APIResourceCredentials getResourceCredentials(
+        final LocalUserDetail localUserDetail) {
+        return credentialsOf(entriesByUser.get(localUserDetail));
+    }
+
+    public APIResourceCredentials getResourceCredentialsByTempToken(
+        final String tempToken) {
+        if (tempToken == null) {
+            return null;
+        }
+        return credentialsOf(entriesByTempToken.get(tempToken));
+    }
+
+    /**
+     * Saves the credentials for the user, replacing any pending ones.
+     *
+     * @throws OmhException
+     *         There are already too many pending authorizations.
+     */
+    public APIResourceCredentials saveResourceCredentials(
+        final LocalUserDetail localUserDetail,
+        final APIResourceCredentials credentials) {
+        long now = System.currentTimeMillis();
+        purgeIfDue(now);
+
+        if (entriesByUser.size() >= maxEntries
+            && ! entriesByUser.containsKey(localUserDetail)) {
+            purge(now);
+            if (entriesByUser.size() >= maxEntries) {
+                rejectedCount.incrementAndGet();
+                throw new OmhException(
+                    "Too many pending Fitbit authorizations.");
+            }
+        }
+
+        Entry entry = new Entry(localUserDetail, credentials, now + ttlMillis);
+        Entry previous = entriesByUser.put(localUserDetail, entry);
+        if (previous != null) {
+            removeTempToken(previous);
+        }
+        if (credentials.getTempToken() != null) {
+            entriesByTempToken.put(credentials.getTempToken(), entry);
+        }
+
+        return credentialsOf(previous);
+    }
+
+    public APIResourceCredentials expireResourceCredentials(
+        final LocalUserDetail localUserDetail) {
+        Entry entry = entriesByUser.remove(localUserDetail);
+        if (entry == null) {
+            return null;
+        }
+        removeTempToken(entry);
+        return entry.credentials;
+    }
+
+    /**
+     * @return The number of authorizations currently pending.
+     */
+    public int getPendingCount() {
+        return entriesByUser.size();
+    }
+
+    /**
+     * @return The number of authorizations dropped because they expired.
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return The number of authorizations refused because the store was
+     *         full.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the credentials of a live entry, dropping it if it has
+     * expired.
+     */
+    private APIResourceCredentials credentialsOf(final Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            if (entriesByUser.remove(entry.localUserDetail, entry)) {
+                removeTempToken(entry);
+                expiredCount.incrementAndGet();
+            }
+            return null;
+        }
+        return entry.credentials;
+    }
+
+    /**
+     * Sweeps expired entries at most once per half TTL, so the sweep cost is
+     * spread thinly over the saves.
+     */
+    private void purgeIfDue(final long now) {
+        long due = nextPurge.get();
+        if (now >= due && nextPurge.compareAndSet(due, now + ttlMillis / 2)) {
+            purge(now);
+        }
+    }
+
+    private void purge(final long now) {
+        Iterator<Entry> entries = entriesByUser.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.isExpired(now)) {
+                entries.remove();
+                removeTempToken(entry);
+                expiredCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void removeTempToken(final Entry entry) {
+        String tempToken = entry.credentials.getTempToken();
+        if (tempToken != null) {
+            entriesByTempToken.remove(tempToken, entry);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.openmhealth.shim.fitbit;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.LocalDate;
+import org.openmhealth.reference.exception.OmhException;
+
+import com.fitbit.api.client.FitbitApiClientAgent;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.client.service.FitbitAPIClientService;
+
+/**
+ * A Fitbit API endpoint that returns one summary per day, along with the
+ * fields that can be read from that summary. One FitbitResource is defined
+ * for each supported endpoint.
+ *
+ * Resources outside this package can be added to the shim by listing them
+ * in META-INF/services/org.openmhealth.shim.fitbit.FitbitResource. They then
+ * need a public no-argument constructor.
+ */
+public abstract class FitbitResource<T> {
+    private final String name;
+    private final Map<String, FitbitFieldExtractor<T>> fields =
+        new HashMap<String, FitbitFieldExtractor<T>>();
+
+    /**
+     * @param name
+     *        The name data type declarations use to refer to this resource.
+     */
+    protected FitbitResource(final String name) {
+        if (name == null) {
+            throw new OmhException("The name is null.");
+        }
+
+        this.name = name;
+    }
+
+    public String getName() { return name; }
+
+    /**
+     * Fetches the summary returned by the endpoint for the given date.
+     *
+     * @param client
+     *        The Fitbit API client.
+     *
+     * @param localUserDetail
+     *        The Fitbit user to fetch the data for.
+     *
+     * @param date
+     *        The date of the data.
+     *
+     * @return The summary for that date.
+     */
+    public abstract T summaryForDay(
+        FitbitAPIClientService<FitbitApiClientAgent> client,
+        LocalUserDetail localUserDetail, LocalDate date);
+
+    /**
+     * Whether this resource only has data that devices record, rather than
+     * data users can also log by hand. Days after the user's devices last
+     * synced can't have such data, so filters skip them without a fetch.
+     *
+     * @return False, unless a subclass says otherwise.
+     */
+    public boolean isRecordedByDevices() {
+        return false;
+    }
+
+    /**
+     * Looks up a field by name.
+     *
+     * @param fieldName
+     *        The field name.
+     *
+     * @return The field's extractor, or null if there is no such field.
+     */
+    public FitbitFieldExtractor<T> getField(final String fieldName) {
+        return fields.get(fieldName);
+    }
+
+    /**
+     * @return The names of all of the fields of this resource.
+     */
+    public Set<String> getFieldNames() {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    /**
+     * Adds a field to this resource. Meant to be called from the constructor.
+     *
+     * @param fieldName
+     *        The field name.
+     *
+     * @param extractor
+     *        The extractor for the field.
+     */
+    protected void addField(
+        final String fieldName,
+        final FitbitFieldExtractor<T> extractor) {
+        if (fieldName == null) {
+            throw new OmhException("The field name is null.");
+        }
+        if (extractor == null) {
+            throw new OmhException("The extractor is null.");
+        }
+        if (fields.containsKey(fieldName)) {
+            throw new OmhException(
+                "The field is already defined: " + name + "." + fieldName);
+        }
+
+        fields.put(fieldName, extractor);
+    }
+}
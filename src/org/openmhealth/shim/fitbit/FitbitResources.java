@@ -0,0 +1,415 @@
+package org.openmhealth.shim.fitbit;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.joda.time.LocalDate;
+import org.openmhealth.shim.exception.ShimDataException;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.FitbitApiClientAgent;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.client.service.FitbitAPIClientService;
+import com.fitbit.api.common.model.activities.ActivitiesSummary;
+import com.fitbit.api.common.model.activities.ActivityDistance;
+import com.fitbit.api.common.model.body.Body;
+import com.fitbit.api.common.model.foods.FoodsSummary;
+import com.fitbit.api.common.model.foods.WaterLogSummary;
+import com.fitbit.api.common.model.heart.Heart;
+import com.fitbit.api.common.model.heart.HeartAverage;
+import com.fitbit.api.common.model.sleep.SleepSummary;
+import com.fitbit.api.model.FitbitUser;
+
+/**
+ * The FitbitResources built into the shim. The client's locale is US, so
+ * Fitbit reports values in US units.
+ */
+public class FitbitResources {
+    /**
+     * The activity name Fitbit uses for the day's overall distance.
+     */
+    private static final String DISTANCE_TOTAL = "total";
+
+    /**
+     * The tracker names Fitbit uses for the daily heart rate averages.
+     */
+    private static final String HEART_RESTING = "Resting Heart Rate";
+    private static final String HEART_NORMAL = "Normal Heart Rate";
+    private static final String HEART_EXERTIVE = "Exertive Heart Rate";
+
+    /**
+     * This class only holds the built-in resources.
+     */
+    private FitbitResources() {}
+
+    /**
+     * @return A new instance of every built-in resource.
+     */
+    public static List<FitbitResource<?>> builtIn() {
+        return Arrays.<FitbitResource<?>>asList(
+            new Activities(),
+            new Sleep(),
+            new BodyMeasurements(),
+            new HeartRate(),
+            new FoodLog(),
+            new WaterLog());
+    }
+
+    /**
+     * The daily activities summary.
+     */
+    public static class Activities extends FitbitResource<ActivitiesSummary> {
+        public Activities() {
+            super("activities");
+
+            addField(
+                "caloriesOut",
+                new FitbitFieldExtractor<ActivitiesSummary>(true) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        return summary.getCaloriesOut();
+                    }
+                });
+            addField(
+                "activityCalories",
+                new FitbitFieldExtractor<ActivitiesSummary>(true) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        return summary.getActivityCalories();
+                    }
+                });
+            addField(
+                "steps",
+                new FitbitFieldExtractor<ActivitiesSummary>(true) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        return summary.getSteps();
+                    }
+                });
+            addField(
+                "distance",
+                new FitbitFieldExtractor<ActivitiesSummary>(false) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        return totalDistance(summary);
+                    }
+                });
+            addField(
+                "floors",
+                new FitbitFieldExtractor<ActivitiesSummary>(true) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        Integer floors = summary.getFloors();
+                        return (floors == null) ? Double.NaN : floors;
+                    }
+                });
+            addField(
+                "elevation",
+                new FitbitFieldExtractor<ActivitiesSummary>(false) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        Double elevation = summary.getElevation();
+                        return (elevation == null) ? Double.NaN : elevation;
+                    }
+                });
+            addField(
+                "sedentaryMinutes",
+                new FitbitFieldExtractor<ActivitiesSummary>(true) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        return summary.getSedentaryMinutes();
+                    }
+                });
+            addField(
+                "lightlyActiveMinutes",
+                new FitbitFieldExtractor<ActivitiesSummary>(true) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        return summary.getLightlyActiveMinutes();
+                    }
+                });
+            addField(
+                "fairlyActiveMinutes",
+                new FitbitFieldExtractor<ActivitiesSummary>(true) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        return summary.getFairlyActiveMinutes();
+                    }
+                });
+            addField(
+                "veryActiveMinutes",
+                new FitbitFieldExtractor<ActivitiesSummary>(true) {
+                    public double valueOf(ActivitiesSummary summary) {
+                        return summary.getVeryActiveMinutes();
+                    }
+                });
+        }
+
+        public boolean isRecordedByDevices() {
+            return true;
+        }
+
+        public ActivitiesSummary summaryForDay(
+            FitbitAPIClientService<FitbitApiClientAgent> client,
+            LocalUserDetail localUserDetail, LocalDate date) {
+            try {
+                return client.getClient().getActivities(
+                    localUserDetail, FitbitUser.CURRENT_AUTHORIZED_USER,
+                    date).getSummary();
+            }
+            catch(FitbitAPIException e) {
+                throw new ShimDataException("Fitbit API error", e);
+            }
+        }
+
+        /**
+         * Returns the total distance from an activities summary, or 0 if
+         * Fitbit didn't report one.
+         */
+        private static double totalDistance(final ActivitiesSummary summary) {
+            List<ActivityDistance> distances = summary.getDistances();
+            if (distances == null) {
+                return 0;
+            }
+            for(int i = 0, size = distances.size(); i < size; i++) {
+                ActivityDistance d = distances.get(i);
+                if (DISTANCE_TOTAL.equals(d.getActivity())) {
+                    return d.getDistance();
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * The daily sleep summary.
+     */
+    public static class Sleep extends FitbitResource<SleepSummary> {
+        public Sleep() {
+            super("sleep");
+
+            addField(
+                "totalMinutesAsleep",
+                new FitbitFieldExtractor<SleepSummary>(true) {
+                    public double valueOf(SleepSummary summary) {
+                        return summary.getTotalMinutesAsleep();
+                    }
+                });
+            addField(
+                "totalTimeInBed",
+                new FitbitFieldExtractor<SleepSummary>(true) {
+                    public double valueOf(SleepSummary summary) {
+                        return summary.getTotalTimeInBed();
+                    }
+                });
+        }
+
+        public SleepSummary summaryForDay(
+            FitbitAPIClientService<FitbitApiClientAgent> client,
+            LocalUserDetail localUserDetail, LocalDate date) {
+            try {
+                return client.getClient().getSleep(
+                    localUserDetail, FitbitUser.CURRENT_AUTHORIZED_USER,
+                    date).getSummary();
+            }
+            catch(FitbitAPIException e) {
+                throw new ShimDataException("Fitbit API error", e);
+            }
+        }
+    }
+
+    /**
+     * The body measurements logged for a day, including body weight. Fitbit
+     * reports 0 for a day without a measurement, which is never a real
+     * reading, so it is returned as missing.
+     */
+    public static class BodyMeasurements extends FitbitResource<Body> {
+        public BodyMeasurements() {
+            super("body");
+
+            addField(
+                "weight",
+                new FitbitFieldExtractor<Body>(false) {
+                    public double valueOf(Body body) {
+                        return missingIfZero(body.getWeight());
+                    }
+                });
+            addField(
+                "bmi",
+                new FitbitFieldExtractor<Body>(false) {
+                    public double valueOf(Body body) {
+                        return missingIfZero(body.getBmi());
+                    }
+                });
+            addField(
+                "fat",
+                new FitbitFieldExtractor<Body>(false) {
+                    public double valueOf(Body body) {
+                        return missingIfZero(body.getFat());
+                    }
+                });
+        }
+
+        /**
+         * Returns a body measurement, or NaN if Fitbit reported 0.
+         */
+        private static double missingIfZero(final double value) {
+            return (value == 0) ? Double.NaN : value;
+        }
+
+        public Body summaryForDay(
+            FitbitAPIClientService<FitbitApiClientAgent> client,
+            LocalUserDetail localUserDetail, LocalDate date) {
+            try {
+                return client.getClient().getBody(
+                    localUserDetail, FitbitUser.CURRENT_AUTHORIZED_USER,
+                    date);
+            }
+            catch(FitbitAPIException e) {
+                throw new ShimDataException("Fitbit API error", e);
+            }
+        }
+    }
+
+    /**
+     * The heart rate averages for a day.
+     */
+    public static class HeartRate extends FitbitResource<Heart> {
+        public HeartRate() {
+            super("heart");
+
+            addField("restingHeartRate", new AverageExtractor(HEART_RESTING));
+            addField("normalHeartRate", new AverageExtractor(HEART_NORMAL));
+            addField(
+                "exertiveHeartRate", new AverageExtractor(HEART_EXERTIVE));
+        }
+
+        public Heart summaryForDay(
+            FitbitAPIClientService<FitbitApiClientAgent> client,
+            LocalUserDetail localUserDetail, LocalDate date) {
+            try {
+                return client.getClient().getLoggedHeartRate(
+                    localUserDetail, FitbitUser.CURRENT_AUTHORIZED_USER,
+                    date);
+            }
+            catch(FitbitAPIException e) {
+                throw new ShimDataException("Fitbit API error", e);
+            }
+        }
+
+        /**
+         * Reads the average for one tracker, or NaN if it wasn't logged.
+         */
+        private static class AverageExtractor
+            extends FitbitFieldExtractor<Heart> {
+            private final String tracker;
+
+            public AverageExtractor(final String tracker) {
+                super(true);
+                this.tracker = tracker;
+            }
+
+            public double valueOf(final Heart heart) {
+                List<HeartAverage> averages = heart.getTrackerAverage();
+                if (averages == null) {
+                    return Double.NaN;
+                }
+                for(int i = 0, size = averages.size(); i < size; i++) {
+                    HeartAverage average = averages.get(i);
+                    if (tracker.equals(average.getTracker())) {
+                        return average.getHeartRate();
+                    }
+                }
+                return Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * The daily summary of the food log. A day with nothing logged totals 0,
+     * which is what the log adds up to, so it is returned as is.
+     */
+    public static class FoodLog extends FitbitResource<FoodsSummary> {
+        public FoodLog() {
+            super("foods");
+
+            addField(
+                "calories",
+                new FitbitFieldExtractor<FoodsSummary>(true) {
+                    public double valueOf(FoodsSummary summary) {
+                        return summary.getCalories();
+                    }
+                });
+            addField(
+                "carbs",
+                new FitbitFieldExtractor<FoodsSummary>(false) {
+                    public double valueOf(FoodsSummary summary) {
+                        return summary.getCarbs();
+                    }
+                });
+            addField(
+                "fat",
+                new FitbitFieldExtractor<FoodsSummary>(false) {
+                    public double valueOf(FoodsSummary summary) {
+                        return summary.getFat();
+                    }
+                });
+            addField(
+                "fiber",
+                new FitbitFieldExtractor<FoodsSummary>(false) {
+                    public double valueOf(FoodsSummary summary) {
+                        return summary.getFiber();
+                    }
+                });
+            addField(
+                "protein",
+                new FitbitFieldExtractor<FoodsSummary>(false) {
+                    public double valueOf(FoodsSummary summary) {
+                        return summary.getProtein();
+                    }
+                });
+            addField(
+                "sodium",
+                new FitbitFieldExtractor<FoodsSummary>(false) {
+                    public double valueOf(FoodsSummary summary) {
+                        return summary.getSodium();
+                    }
+                });
+        }
+
+        public FoodsSummary summaryForDay(
+            FitbitAPIClientService<FitbitApiClientAgent> client,
+            LocalUserDetail localUserDetail, LocalDate date) {
+            try {
+                return client.getClient().getFoods(
+                    localUserDetail, FitbitUser.CURRENT_AUTHORIZED_USER,
+                    date).getSummary();
+            }
+            catch(FitbitAPIException e) {
+                throw new ShimDataException("Fitbit API error", e);
+            }
+        }
+    }
+
+    /**
+     * The daily summary of the water log. As with the food log, a day with
+     * nothing logged totals 0.
+     */
+    public static class WaterLog extends FitbitResource<WaterLogSummary> {
+        public WaterLog() {
+            super("water");
+
+            addField(
+                "water",
+                new FitbitFieldExtractor<WaterLogSummary>(false) {
+                    public double valueOf(WaterLogSummary summary) {
+                        return summary.getWater();
+                    }
+                });
+        }
+
+        public WaterLogSummary summaryForDay(
+            FitbitAPIClientService<FitbitApiClientAgent> client,
+            LocalUserDetail localUserDetail, LocalDate date) {
+            try {
+                return client.getClient().getLoggedWater(
+                    localUserDetail, FitbitUser.CURRENT_AUTHORIZED_USER,
+                    date).getSummary();
+            }
+            catch(FitbitAPIException e) {
+                throw new ShimDataException("Fitbit API error", e);
+            }
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package org.openmhealth.shim.fitbit;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.chrono.ISOChronology;
 import org.openmhealth.reference.domain.ColumnList;
 import org.openmhealth.reference.domain.Data;
 import org.openmhealth.reference.domain.ExternalAuthorizationToken;
@@ -20,7 +24,9 @@ import org.openmhealth.shim.authorization.oauth1.OAuth1Authorization;
 import org.openmhealth.shim.exception.ShimDataException;
 import org.openmhealth.shim.exception.ShimSchemaException;
 
-import com.fitbit.api.FitbitAPIException;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 import com.fitbit.api.client.FitbitAPIEntityCache;
 import com.fitbit.api.client.FitbitApiClientAgent;
 import com.fitbit.api.client.FitbitApiCredentialsCache;
@@ -30,11 +36,7 @@ import com.fitbit.api.client.FitbitApiSubscriptionStorage;
 import com.fitbit.api.client.FitbitApiSubscriptionStorageInMemoryImpl;
 import com.fitbit.api.client.LocalUserDetail;
 import com.fitbit.api.client.service.FitbitAPIClientService;
-import com.fitbit.api.common.model.activities.ActivitiesSummary;
-import com.fitbit.api.common.model.activities.ActivityDistance;
-import com.fitbit.api.common.model.sleep.SleepSummary;
 import com.fitbit.api.model.APIResourceCredentials;
-import com.fitbit.api.model.FitbitUser;
 
 public class FitbitShim implements Shim {
     private static final String DOMAIN = "fitbit";
@@ -44,6 +46,22 @@ public class FitbitShim implements Shim {
      */
     private static final String SCHEMA_PREFIX = "omh:" + DOMAIN + ":";
 
+    /**
+     * The defaults for the optional authorization properties.
+     */
+    private static final long DEFAULT_AUTHORIZATION_TTL_SECONDS = 15 * 60;
+    private static final int DEFAULT_AUTHORIZATION_MAX_PENDING = 10000;
+    private static final int DEFAULT_AUTHORIZATION_THREADS = 4;
+    private static final long DEFAULT_AUTHORIZATION_TIMEOUT_SECONDS = 30;
+    private static final long DEFAULT_AUTHORIZATION_LATENCY_MILLIS = 2000;
+
+    /**
+     * The defaults for the optional summary cache properties.
+     */
+    private static final long DEFAULT_SUMMARY_CACHE_TTL_SECONDS = 5 * 60;
+    private static final int DEFAULT_SUMMARY_CACHE_MAX_ACCOUNTS = 2000;
+    private static final int DEFAULT_SUMMARY_CACHE_DAYS = 92;
+
     /**
      * Used internally by the Fitbit lib.
      */
@@ -60,179 +78,67 @@ public class FitbitShim implements Shim {
     private FitbitAPIClientService<FitbitApiClientAgent> apiClientService;
 
     /**
-     * Interface for the data fetchers used in the dataFetcherMap below. One
-     * DataFetcher will be defined for each supported API endpoint.
+     * Summaries already fetched from Fitbit, shared by the schemas that read
+     * from the same endpoint.
      */
-    private interface DataFetcher {
-        /**
-         * Fetches the value of a single field for the given date.
-         *
-         * @param client
-         *        The Fitbit API client.
-         *
-         * @param localUserDetail
-         *        The Fitbit user to fetch the data for.
-         *
-         * @param date
-         *        The date of the data.
-         *
-         * @param field
-         *        The field to fetch.
-         *
-         * @return The value of the field.
-         */
-        public Object dataForDay(
-            FitbitAPIClientService<FitbitApiClientAgent> client,
-            LocalUserDetail localUserDetail, DateTime date,
-            DataType.Field field);
-    }
+    private final FitbitSummaryCache summaryCache;
 
-    private static final DataFetcher activitiesFetcher =
-        new DataFetcher() {
-            public Object dataForDay(
-                FitbitAPIClientService<FitbitApiClientAgent> client,
-                LocalUserDetail localUserDetail, DateTime date,
-                DataType.Field field) {
-                return activityForDay(client, localUserDetail, date, field);
-            }
-        };
-    
-    private static final DataFetcher sleepFetcher =
-        new DataFetcher() {
-            public Object dataForDay(
-                FitbitAPIClientService<FitbitApiClientAgent> client,
-                LocalUserDetail localUserDetail, DateTime date,
-                DataType.Field field) {
-                return sleepForDay(client, localUserDetail, date, field);
-            }
-        };
+    /**
+     * Holds the temporary credentials of authorizations that are in
+     * progress, apart from the credentials used to fetch data.
+     */
+    private final FitbitPendingAuthorizationStore pendingAuthorizationStore;
 
     /**
-     * Class to represent how to extract a given type of data point from the
-     * Fitbit API.
+     * Fitbit API client object used to start authorizations. It is backed by
+     * the pending authorization store.
      */
-    private static class DataType {
-        public enum Field {
-            // Activities
-            CALORIES,
-            STEPS,
-            DISTANCE,
-            FLOORS,
-            ELEVATION,
-            SEDENTARY_MINUTES,
-            LIGHTLY_ACTIVE_MINUTES,
-            FAIRLY_ACTIVE_MINUTES,
-            VERY_ACTIVE_MINUTES,
-            ACTIVITY_CALORIES,
-
-            // Sleep
-            TIME_ASLEEP,
-            TIME_IN_BED,
-        }
+    private final FitbitAPIClientService<FitbitApiClientAgent>
+        authorizationClientService;
 
-        private final DataFetcher fetcher;
-        private final Field field;
-        private final Boolean isStandardMeasure;
-        private final String unit;
-
-        /**
-         * @param fetcher
-         *        The DataFetcher used to retrieve the data.
-         *
-         * @param field
-         *        The individual field to extract from the data.
-         */
-        public DataType(
-            DataFetcher fetcher, 
-            Field field,
-            Boolean isStandardMeasure,
-            String unit) {
-            if (fetcher == null) {
-                throw new OmhException("The fetcher is null.");
-            }
-            if (field == null) {
-                throw new OmhException("The field is null.");
-            }
+    /**
+     * Exchanges authorization tokens on a bounded pool of workers, each with
+     * its own client, instead of on the single shared client.
+     */
+    private final FitbitTokenExchanger tokenExchanger;
 
-            this.fetcher = fetcher;
-            this.field = field;
-            this.isStandardMeasure = isStandardMeasure;
-            this.unit = unit;
-        }
+    /**
+     * The JMX view of the authorization store and token exchanger.
+     */
+    private final FitbitAuthorizationMetrics authorizationMetrics;
 
-        public DataType(DataFetcher fetcher, Field field) {
-            this(fetcher, field, false, null);
-        }
+    /**
+     * The authorization implementation for this shim.
+     */
+    private final FitbitShimAuthorization authorization;
 
-        public DataFetcher getFetcher() { return fetcher; }
-        public Field getField() { return field; }
-        public Boolean isStandardMeasure() { return isStandardMeasure; }
-        public String getUnit() { return unit; }
-    }
+    /**
+     * Maps data type names to FitbitDataType objects.
+     */
+    private final FitbitDataTypeRegistry dataTypes;
 
     /**
-     * Maps schema IDs to DataType objects.
+     * The columns of a datum that getData should build.
      */
-    private static Map<String, DataType> dataTypeMap = 
-        new HashMap<String, DataType>();
-    static {
-        // Activities
-        dataTypeMap.put(
-            "calories", 
-            new DataType(activitiesFetcher, DataType.Field.CALORIES));
-        dataTypeMap.put(
-            "calories-burned", 
-            new DataType(
-                activitiesFetcher, DataType.Field.CALORIES,
-                true, "kcal"));
-        dataTypeMap.put(
-            "steps", 
-            new DataType(activitiesFetcher, DataType.Field.STEPS));
-        dataTypeMap.put(
-            "number-of-steps", 
-            new DataType(
-                activitiesFetcher, DataType.Field.STEPS,
-                true, null));
-        dataTypeMap.put(
-            "distance_mi", 
-            new DataType(activitiesFetcher, DataType.Field.DISTANCE));
-        dataTypeMap.put(
-            "floors", 
-            new DataType(activitiesFetcher, DataType.Field.FLOORS));
-        dataTypeMap.put(
-            "elevation_ft", 
-            new DataType(activitiesFetcher, DataType.Field.ELEVATION));
-        dataTypeMap.put(
-            "sedentary_minutes",
-            new DataType(activitiesFetcher, DataType.Field.SEDENTARY_MINUTES));
-        dataTypeMap.put(
-            "lightly_active_minutes", 
-            new DataType(
-                activitiesFetcher, DataType.Field.LIGHTLY_ACTIVE_MINUTES));
-        dataTypeMap.put(
-            "fairly_active_minutes", 
-            new DataType(
-                activitiesFetcher, DataType.Field.FAIRLY_ACTIVE_MINUTES));
-        dataTypeMap.put(
-            "very_active_minutes", 
-            new DataType(
-                activitiesFetcher, DataType.Field.VERY_ACTIVE_MINUTES));
-        dataTypeMap.put(
-            "activity_calories", 
-            new DataType(activitiesFetcher, DataType.Field.ACTIVITY_CALORIES));
-
-        // Sleep
-        dataTypeMap.put(
-            "time_asleep_minutes", 
-            new DataType(sleepFetcher, DataType.Field.TIME_ASLEEP));
-        dataTypeMap.put(
-            "time_in_bed_minutes", 
-            new DataType(sleepFetcher, DataType.Field.TIME_IN_BED));
+    private static class Projection {
+        private final boolean includeValue;
+        private final boolean includeTimeframe;
+        private final boolean includeUnit;
+
+        public Projection(
+            final boolean includeValue,
+            final boolean includeTimeframe,
+            final boolean includeUnit) {
+            this.includeValue = includeValue;
+            this.includeTimeframe = includeTimeframe;
+            this.includeUnit = includeUnit;
+        }
     }
 
     public FitbitShim() {
-        String clientId = System.getProperty(DOMAIN + ".clientId");
-        String clientSecret = System.getProperty(DOMAIN + ".clientSecret");
+        final String clientId = System.getProperty(DOMAIN + ".clientId");
+        final String clientSecret =
+            System.getProperty(DOMAIN + ".clientSecret");
         if (clientId == null || clientSecret == null) {
             throw new OmhException(
                 DOMAIN + ".clientId and " + DOMAIN + ".clientSecret"
@@ -250,6 +156,91 @@ public class FitbitShim implements Shim {
                 entityCache,
                 subscriptionStore);
         apiClientService.getClient().setLocale(Locale.US);
+
+        dataTypes =
+            FitbitDataTypeRegistry.load(FitbitShim.class.getClassLoader());
+
+        summaryCache =
+            new FitbitSummaryCache(
+                TimeUnit.SECONDS.toMillis(
+                    Long.getLong(
+                        DOMAIN + ".summaryCache.ttlSeconds",
+                        DEFAULT_SUMMARY_CACHE_TTL_SECONDS)),
+                Integer.getInteger(
+                    DOMAIN + ".summaryCache.maxAccounts",
+                    DEFAULT_SUMMARY_CACHE_MAX_ACCOUNTS),
+                Integer.getInteger(
+                    DOMAIN + ".summaryCache.days",
+                    DEFAULT_SUMMARY_CACHE_DAYS));
+
+        // Authorizations get their own store and clients so that abandoned
+        // flows expire and token exchanges don't all queue on one client.
+        pendingAuthorizationStore =
+            new FitbitPendingAuthorizationStore(
+                TimeUnit.SECONDS.toMillis(
+                    Long.getLong(
+                        DOMAIN + ".authorization.ttlSeconds",
+                        DEFAULT_AUTHORIZATION_TTL_SECONDS)),
+                Integer.getInteger(
+                    DOMAIN + ".authorization.maxPending",
+                    DEFAULT_AUTHORIZATION_MAX_PENDING));
+        authorizationClientService =
+            buildAuthorizationClientService(clientId, clientSecret);
+
+        int exchangeThreads =
+            Integer.getInteger(
+                DOMAIN + ".authorization.threads",
+                DEFAULT_AUTHORIZATION_THREADS);
+        long exchangeTimeoutMillis =
+            TimeUnit.SECONDS.toMillis(
+                Long.getLong(
+                    DOMAIN + ".authorization.timeoutSeconds",
+                    DEFAULT_AUTHORIZATION_TIMEOUT_SECONDS));
+        long exchangeLatencyMillis =
+            Long.getLong(
+                DOMAIN + ".authorization.expectedLatencyMillis",
+                DEFAULT_AUTHORIZATION_LATENCY_MILLIS);
+        // By default, queue no more exchanges than the workers can get
+        // through before callers time out.
+        int defaultMaxBacklog =
+            (int) Math.max(
+                1,
+                exchangeThreads * exchangeTimeoutMillis
+                    / exchangeLatencyMillis);
+        tokenExchanger =
+            new FitbitTokenExchanger(
+                new FitbitTokenExchanger.ClientFactory() {
+                    public FitbitAPIClientService<FitbitApiClientAgent>
+                        newClient() {
+                        return
+                            buildAuthorizationClientService(
+                                clientId, clientSecret);
+                    }
+                },
+                exchangeThreads,
+                pendingAuthorizationStore,
+                Integer.getInteger(
+                    DOMAIN + ".authorization.maxBacklog",
+                    defaultMaxBacklog),
+                exchangeTimeoutMillis,
+                exchangeLatencyMillis);
+        authorizationMetrics =
+            new FitbitAuthorizationMetrics(
+                pendingAuthorizationStore, tokenExchanger);
+        authorizationMetrics.register();
+
+        authorization =
+            new FitbitShimAuthorization(this, exchangeTimeoutMillis);
+    }
+
+    /**
+     * Releases what the shim holds outside of itself: the token exchange
+     * threads and the metrics MBean. Without this, every redeploy of the
+     * webapp would leave both behind, along with its class loader.
+     */
+    public void shutdown() {
+        tokenExchanger.shutdown();
+        authorizationMetrics.unregister();
     }
 
     public FitbitAPIClientService<FitbitApiClientAgent> getApiClientService() {
@@ -260,19 +251,32 @@ public class FitbitShim implements Shim {
         return credentialsCache;
     }
 
+    public FitbitAPIClientService<FitbitApiClientAgent>
+        getAuthorizationClientService() {
+        return authorizationClientService;
+    }
+
+    public FitbitPendingAuthorizationStore getPendingAuthorizationStore() {
+        return pendingAuthorizationStore;
+    }
+
+    public FitbitTokenExchanger getTokenExchanger() {
+        return tokenExchanger;
+    }
+
     public String getDomain() {
         return DOMAIN;
     }
 
 	public ShimAuthorization getAuthorizationImplementation() {
-        return new FitbitShimAuthorization();
+        return authorization;
     }
 
 	public List<String> getSchemaIds() {
         List<String> schemaIds = new ArrayList<String>();
-        for (String key : dataTypeMap.keySet()) {
+        for (String key : dataTypes.getDataTypeNames()) {
             String prefix;
-            if (dataTypeMap.get(key).isStandardMeasure()) {
+            if (dataTypes.getDataType(key).isStandardMeasure()) {
                 prefix = StandardMeasure.SCHEMA_PREFIX;
             } else {
                 prefix = SCHEMA_PREFIX;
@@ -301,7 +305,7 @@ public class FitbitShim implements Shim {
             return null;
         }
 
-        DataType dataType = getDataType(id);
+        FitbitDataType<?> dataType = getDataType(id);
 
         return ShimUtil.buildSchemaForSingleValue(id, version, null);
     }
@@ -333,7 +337,7 @@ public class FitbitShim implements Shim {
             token.<String>getExtra(OAuth1Authorization.KEY_EXTRAS_SECRET));
         credentialsCache.saveResourceCredentials(localUserDetail, credentials);
 
-        // Extract the data type and find the associated DataType.
+        // Extract the data type and find the associated FitbitDataType.
         String dataTypeString = null;
         try {
             dataTypeString = Schema.dataTypeFromSchemaId(schemaId);
@@ -341,152 +345,370 @@ public class FitbitShim implements Shim {
         catch(ShimSchemaException e) {
             throw new ShimDataException("Invalid schema id: " + schemaId, e);
         }
-        DataType dataType = getDataType(schemaId);
+        FitbitDataType<?> dataType = getDataType(schemaId);
+
+        // Split the column list into the server-side predicates and the
+        // columns to return.
+        FitbitDataFilter filter = FitbitDataFilter.fromColumnList(columnList);
+        ColumnList projectedColumns =
+            FitbitDataFilter.projectionOf(columnList);
+
+        // Work out which columns were asked for.
+        Projection projection;
+        if (dataType.isStandardMeasure()) {
+            projection =
+                new Projection(
+                    isProjected(
+                        projectedColumns, StandardMeasure.JSON_KEY_VALUE),
+                    isProjected(
+                        projectedColumns,
+                        StandardMeasure.JSON_KEY_EFFECTIVE_TIMEFRAME,
+                        StandardMeasure.JSON_KEY_TIMEFRAME_START_TIME),
+                    isProjected(
+                        projectedColumns, StandardMeasure.JSON_KEY_UNIT));
+        } else {
+            projection =
+                new Projection(
+                    isProjected(projectedColumns, dataTypeString),
+                    false,
+                    false);
+        }
 
-        // Fetch the data.
-        List<Data> outputData = new ArrayList<Data>();
-        DateTime dateToFetch = null;
+        // Work out the window in whole days. The loop below only walks a
+        // primitive epoch day; the start of each day is derived from it in
+        // the end date's time zone.
+        DateTimeZone zone;
+        long endMillis;
         if (endDate == null) {
-            dateToFetch = DateTime.now();
+            zone = DateTimeZone.getDefault();
+            endMillis = DateTimeUtils.currentTimeMillis();
         } else {
-            dateToFetch = endDate;
+            zone = endDate.getZone();
+            endMillis = endDate.getMillis();
         }
-        dateToFetch = 
-            dateToFetch.withTime(0, 0, 0, 0).minusDays(numToSkip.intValue());
-        for(; outputData.size() < numToReturn 
-              && (startDate == null || dateToFetch.compareTo(startDate) > 0)
-            ; dateToFetch = dateToFetch.minusDays(1)) {
-            Object value = 
-                dataType.getFetcher().dataForDay(
-                    apiClientService, localUserDetail, dateToFetch, 
-                    dataType.getField());
-            Map<String, Object> outputDatum = new HashMap<String, Object>();
-            if (dataType.isStandardMeasure()) {
-                Map<String, Object> effectiveTimeframe = 
-                    new HashMap<String, Object>();
-                effectiveTimeframe.put(
-                    StandardMeasure.JSON_KEY_TIMEFRAME_START_TIME,
-                    dateToFetch.getMillis() / 1000L);
-                outputDatum.put(
-                    StandardMeasure.JSON_KEY_EFFECTIVE_TIMEFRAME,
-                    effectiveTimeframe);
-
-                outputDatum.put(
-                    StandardMeasure.JSON_KEY_VALUE, value);
-                outputDatum.put(
-                    StandardMeasure.JSON_KEY_UNIT, dataType.getUnit());
-            } else {
-                outputDatum.put(dataTypeString, value);
-            }
-
-            outputData.add(
-                new Data(
-                    token.getUsername(), schemaId, version,
-                    new MetaData(null, dateToFetch),
-                    ShimUtil.objectToJsonNode(outputDatum)));
+        long startMillis =
+            (startDate == null) ? Long.MIN_VALUE : startDate.getMillis();
+        // Without a filter, every day is returned, so skipping is just
+        // moving the window. With one, the skipped data are the first
+        // matching days, so that pages don't overlap.
+        long firstDay = epochDay(zone.convertUTCToLocal(endMillis));
+        long numToSkipMatching = 0;
+        if (filter == null) {
+            firstDay -= numToSkip.longValue();
+        } else {
+            numToSkipMatching = numToSkip.longValue();
         }
 
-        return outputData;
+        return
+            fetchData(
+                dataType, dataTypeString, schemaId, version.longValue(),
+                token.getUsername(), localUserDetail,
+                summaryCache.getAccount(token.getAccessToken()), zone,
+                firstDay, startMillis, numToSkipMatching,
+                numToReturn.longValue(), projection, filter);
     }
 
-    // See the DataFetcher interface.
-    private static Object activityForDay(
-        FitbitAPIClientService<FitbitApiClientAgent> client,
-        LocalUserDetail localUserDetail, DateTime date,
-        DataType.Field field) {
-        // Fetch the data.
-        ActivitiesSummary summary = null;
-        try {
-            summary = client.getClient().getActivities(
-                localUserDetail, FitbitUser.CURRENT_AUTHORIZED_USER, 
-                date.toLocalDate()).getSummary();
-        }
-        catch(FitbitAPIException e) {
-            throw new ShimDataException("Fitbit API error", e);
+    /**
+     * Fetches one datum per day, walking backwards from the first day until
+     * either enough data has been collected or the start of the window has
+     * been reached.
+     *
+     * @param dataType
+     *        The FitbitDataType to fetch.
+     *
+     * @param dataTypeString
+     *        The data type part of the schema ID.
+     *
+     * @param schemaId
+     *        The schema ID.
+     *
+     * @param version
+     *        The schema version.
+     *
+     * @param username
+     *        The owner of the data.
+     *
+     * @param localUserDetail
+     *        The Fitbit user to fetch the data for.
+     *
+     * @param cachedSummaries
+     *        The summaries already fetched for the user's Fitbit account.
+     *
+     * @param zone
+     *        The time zone that days start and end in.
+     *
+     * @param firstDay
+     *        The most recent day to fetch, as days since the epoch.
+     *
+     * @param startMillis
+     *        Days must start strictly after this instant.
+     *
+     * @param numToSkip
+     *        The number of days accepted by the filter to skip before
+     *        returning any.
+     *
+     * @param numToReturn
+     *        The maximum number of data to return.
+     *
+     * @param projection
+     *        The columns to include in each datum.
+     *
+     * @param filter
+     *        The filter to apply, or null.
+     *
+     * @return The data.
+     */
+    private <T> List<Data> fetchData(
+        final FitbitDataType<T> dataType,
+        final String dataTypeString,
+        final String schemaId,
+        final long version,
+        final String username,
+        final LocalUserDetail localUserDetail,
+        final FitbitSummaryCache.Account cachedSummaries,
+        final DateTimeZone zone,
+        final long firstDay,
+        final long startMillis,
+        final long numToSkip,
+        final long numToReturn,
+        final Projection projection,
+        final FitbitDataFilter filter) {
+        FitbitResource<T> resource = dataType.getResource();
+        FitbitFieldExtractor<T> field = dataType.getField();
+        boolean isStandardMeasure = dataType.isStandardMeasure();
+        String unit = dataType.getUnit();
+        FitbitSummaryCache.Series summaries =
+            cachedSummaries.getSeries(resource);
+
+        // Without a filter, the value only has to be fetched if it is
+        // returned.
+        boolean needsValue = projection.includeValue || filter != null;
+
+        // A filter may reject every day, so bound the walk by the days the
+        // account can have data for.
+        long lastDay = firstDay;
+        long earliestDay = Long.MIN_VALUE;
+        if (filter != null) {
+            FitbitDataWindow dataWindow =
+                dataWindowOf(cachedSummaries, localUserDetail);
+            earliestDay = dataWindow.getFirstDay();
+            if (filter.isDaysWithDataOnly()
+                && resource.isRecordedByDevices()) {
+                lastDay = Math.min(lastDay, dataWindow.getLastSyncDay());
+            }
         }
 
-        // Return the specific field.
-        switch(field) {
-            case CALORIES:
-                return summary.getCaloriesOut();
-
-            case STEPS:
-                return summary.getSteps();
+        long skipped = 0;
+        List<Data> outputData = new ArrayList<Data>();
+        for(long day = lastDay;
+            outputData.size() < numToReturn && day >= earliestDay;
+            day--) {
+            long localMillis = day * DateTimeConstants.MILLIS_PER_DAY;
+            long dayStartMillis = zone.convertLocalToUTC(localMillis, false);
+            if (dayStartMillis <= startMillis) {
+                break;
+            }
 
-            case DISTANCE:
-                double distance = 0;
-                for(ActivityDistance d : summary.getDistances()) {
-                    if (d.getActivity().equals("total")) {
-                        distance = d.getDistance();
-                        break;
+            double value = Double.NaN;
+            if (needsValue) {
+                value =
+                    field.valueOf(
+                        summaryForDay(
+                            resource, summaries, localUserDetail, day));
+                if (filter != null) {
+                    if (! filter.accepts(value)) {
+                        continue;
+                    }
+                    if (skipped < numToSkip) {
+                        skipped++;
+                        continue;
                     }
                 }
-                return distance;
-
-            case FLOORS:
-                return summary.getFloors();
-
-            case ELEVATION:
-                return summary.getElevation();
-
-            case SEDENTARY_MINUTES:
-                return summary.getSedentaryMinutes();
+            }
 
-            case LIGHTLY_ACTIVE_MINUTES:
-                return summary.getLightlyActiveMinutes();
+            ObjectNode outputDatum = JsonNodeFactory.instance.objectNode();
+            if (isStandardMeasure) {
+                if (projection.includeTimeframe) {
+                    outputDatum
+                        .putObject(
+                            StandardMeasure.JSON_KEY_EFFECTIVE_TIMEFRAME)
+                        .put(
+                            StandardMeasure.JSON_KEY_TIMEFRAME_START_TIME,
+                            dayStartMillis / 1000L);
+                }
+                if (projection.includeValue) {
+                    field.putValue(
+                        value, outputDatum, StandardMeasure.JSON_KEY_VALUE);
+                }
+                if (projection.includeUnit) {
+                    outputDatum.put(StandardMeasure.JSON_KEY_UNIT, unit);
+                }
+            } else if (projection.includeValue) {
+                field.putValue(value, outputDatum, dataTypeString);
+            }
 
-            case FAIRLY_ACTIVE_MINUTES:
-                return summary.getFairlyActiveMinutes();
+            outputData.add(
+                new Data(
+                    username, schemaId, version,
+                    new MetaData(null, new DateTime(dayStartMillis, zone)),
+                    outputDatum));
+        }
 
-            case VERY_ACTIVE_MINUTES:
-                return summary.getVeryActiveMinutes();
+        return outputData;
+    }
 
-            case ACTIVITY_CALORIES:
-                return summary.getActivityCalories();
+    /**
+     * Returns the summary for a day, only calling Fitbit if it isn't cached.
+     *
+     * @param resource
+     *        The resource to fetch.
+     *
+     * @param summaries
+     *        The cached summaries of the resource.
+     *
+     * @param localUserDetail
+     *        The Fitbit user to fetch the data for.
+     *
+     * @param day
+     *        The day, as days since the epoch.
+     *
+     * @return The summary.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T summaryForDay(
+        final FitbitResource<T> resource,
+        final FitbitSummaryCache.Series summaries,
+        final LocalUserDetail localUserDetail,
+        final long day) {
+        T summary = (T) summaries.get(day);
+        if (summary == null) {
+            summary =
+                resource.summaryForDay(
+                    apiClientService, localUserDetail,
+                    new LocalDate(
+                        day * DateTimeConstants.MILLIS_PER_DAY,
+                        ISOChronology.getInstanceUTC()));
+            summaries.put(day, summary);
+        }
+        return summary;
+    }
 
-            default:
-                throw new OmhException("Unknown activities Field");
+    /**
+     * Returns the days an account can have data for, only calling Fitbit if
+     * they aren't cached.
+     *
+     * @param cachedSummaries
+     *        The summaries already fetched for the account.
+     *
+     * @param localUserDetail
+     *        The Fitbit user.
+     *
+     * @return The account's data window.
+     */
+    private FitbitDataWindow dataWindowOf(
+        final FitbitSummaryCache.Account cachedSummaries,
+        final LocalUserDetail localUserDetail) {
+        FitbitDataWindow dataWindow = cachedSummaries.getDataWindow();
+        if (dataWindow == null) {
+            dataWindow =
+                FitbitDataWindow.fetch(apiClientService, localUserDetail);
+            cachedSummaries.putDataWindow(dataWindow);
         }
+        return dataWindow;
     }
 
-    // See the DataFetcher interface.
-    private static Object sleepForDay(
-        FitbitAPIClientService<FitbitApiClientAgent> client,
-        LocalUserDetail localUserDetail, DateTime date,
-        DataType.Field field) {
-        // Fetch the data.
-        SleepSummary summary = null;
-        try {
-            summary = client.getClient().getSleep(
-                localUserDetail, FitbitUser.CURRENT_AUTHORIZED_USER, 
-                date.toLocalDate()).getSummary();
+    /**
+     * Checks whether a column, and optionally one of its children, is part
+     * of the projection.
+     *
+     * @param columnList
+     *        The projection, or null for every column.
+     *
+     * @param column
+     *        The top-level column.
+     *
+     * @param child
+     *        The child column that must be included, or null.
+     *
+     * @return Whether the column is included.
+     */
+    private static boolean isProjected(
+        final ColumnList columnList,
+        final String column,
+        final String child) {
+        if (columnList == null || columnList.getChildren().isEmpty()) {
+            return true;
         }
-        catch(FitbitAPIException e) {
-            throw new ShimDataException("Fitbit API error", e);
+        if (! columnList.getChildren().contains(column)) {
+            return false;
         }
+        return
+            child == null || isProjected(columnList.getChild(column), child);
+    }
 
-        // Return the specific field.
-        switch(field) {
-            case TIME_ASLEEP:
-                return summary.getTotalMinutesAsleep();
-
-            case TIME_IN_BED:
-                return summary.getTotalTimeInBed();
+    private static boolean isProjected(
+        final ColumnList columnList,
+        final String column) {
+        return isProjected(columnList, column, null);
+    }
 
-            default:
-                throw new OmhException("Unknown sleep Field");
+    /**
+     * Converts a local timestamp to the number of days since the epoch,
+     * rounding down for timestamps before it.
+     *
+     * @param localMillis
+     *        The local timestamp.
+     *
+     * @return The epoch day.
+     */
+    private static long epochDay(final long localMillis) {
+        long day = localMillis / DateTimeConstants.MILLIS_PER_DAY;
+        if (localMillis < 0
+            && day * DateTimeConstants.MILLIS_PER_DAY != localMillis) {
+            day--;
         }
+        return day;
+    }
+
+    /**
+     * Builds a Fitbit API client object that keeps its credentials in the
+     * pending authorization store.
+     *
+     * @param clientId
+     *        The Fitbit client ID.
+     *
+     * @param clientSecret
+     *        The Fitbit client secret.
+     *
+     * @return The client object.
+     */
+    private FitbitAPIClientService<FitbitApiClientAgent>
+        buildAuthorizationClientService(
+            final String clientId,
+            final String clientSecret) {
+        FitbitAPIClientService<FitbitApiClientAgent> service =
+            new FitbitAPIClientService<FitbitApiClientAgent>(
+                new FitbitApiClientAgent(
+                    "api.fitbit.com", "http://www.fitbit.com", 
+                    pendingAuthorizationStore),
+                clientId,
+                clientSecret,
+                pendingAuthorizationStore,
+                entityCache,
+                subscriptionStore);
+        service.getClient().setLocale(Locale.US);
+        return service;
     }
 
     /**
-     * Look up the DataType associated with the given schema ID.
+     * Look up the FitbitDataType associated with the given schema ID.
      *
      * @param schemaId
      *        The schema ID.
      *
-     * @return The associated DataType.
+     * @return The associated FitbitDataType.
      */
-    private DataType getDataType(final String schemaId) {
+    private FitbitDataType<?> getDataType(final String schemaId) {
         String dataTypeString = null;
         try {
             dataTypeString = Schema.dataTypeFromSchemaId(schemaId);
@@ -495,7 +717,8 @@ public class FitbitShim implements Shim {
             throw new ShimDataException("Invalid schema id: " + schemaId, e);
         }
 
-        DataType dataType = dataTypeMap.get(dataTypeString);
+        FitbitDataType<?> dataType =
+            dataTypes.getDataType(dataTypeString);
         if (dataType == null) {
             throw new ShimDataException("Unknown schema id: " + schemaId);
         }
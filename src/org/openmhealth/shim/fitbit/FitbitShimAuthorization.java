@@ -6,6 +6,11 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.servlet.http.HttpServletRequest;
 
 import org.openmhealth.reference.domain.ExternalAuthorizationInformation;
@@ -14,7 +19,6 @@ import org.openmhealth.reference.exception.OmhException;
 import org.openmhealth.reference.request.AuthorizeDomainRequest;
 import org.openmhealth.reference.servlet.Version1;
 import org.openmhealth.shim.Shim;
-import org.openmhealth.shim.ShimRegistry;
 import org.openmhealth.shim.authorization.ShimAuthorization;
 import org.openmhealth.shim.authorization.oauth1.OAuth1Authorization;
 
@@ -26,6 +30,28 @@ import com.fitbit.api.client.LocalUserDetail;
 import com.fitbit.api.model.APIResourceCredentials;
 
 public class FitbitShimAuthorization implements ShimAuthorization {
+    private final FitbitShim shim;
+    private final long exchangeTimeoutMillis;
+
+    /**
+     * @param shim
+     *        The shim being authorized against.
+     *
+     * @param exchangeTimeoutMillis
+     *        How long getAuthorizationToken waits for the token exchange, in
+     *        milliseconds.
+     */
+    public FitbitShimAuthorization(
+        final FitbitShim shim,
+        final long exchangeTimeoutMillis) {
+        if (shim == null) {
+            throw new OmhException("The shim is null.");
+        }
+
+        this.shim = shim;
+        this.exchangeTimeoutMillis = exchangeTimeoutMillis;
+    }
+
 	public ExternalAuthorizationInformation getAuthorizationInformation(
 		final Shim shim,
 		final String username,
@@ -41,12 +67,14 @@ public class FitbitShimAuthorization implements ShimAuthorization {
 		String callbackUrl =
 		    AuthorizeDomainRequest.buildUrl(request, parameters);
 
-        // Build the authorization URL.
-        LocalUserDetail localUserDetail = new LocalUserDetail(username);
+        // Build the authorization URL. The pending entry is keyed by the
+        // authorize ID so that concurrent flows for one user stay apart.
+        LocalUserDetail localUserDetail =
+            new LocalUserDetail(username + ":" + authorizeId);
         String authorizationUrlString = null;
         try {
             authorizationUrlString =
-                fitbitShim.getApiClientService()
+                fitbitShim.getAuthorizationClientService()
                     .getResourceOwnerAuthorizationURL(
                         localUserDetail, callbackUrl);
         }
@@ -62,13 +90,20 @@ public class FitbitShimAuthorization implements ShimAuthorization {
             throw new OmhException("The authorization URL is invalid.", e);
         }
 
-        // Build the preAuthState with the temporary token secret.
+        // Build the preAuthState with the temporary token secret. It travels
+        // with the authorization information from here on, so the pending
+        // entry isn't needed anymore.
+        APIResourceCredentials tempCredentials =
+            fitbitShim.getPendingAuthorizationStore()
+                .expireResourceCredentials(localUserDetail);
+        if (tempCredentials == null) {
+            throw new OmhException(
+                "The temporary Fitbit credentials were not saved.");
+        }
         Map<String, Object> preAuthState = new HashMap<String, Object>();
         preAuthState.put(
             OAuth1Authorization.KEY_EXTRAS_SECRET,
-            fitbitShim.getCredentialsCache()
-                .getResourceCredentials(localUserDetail)
-                .getTempTokenSecret());
+            tempCredentials.getTempTokenSecret());
 
 		return
 			new ExternalAuthorizationInformation(
@@ -80,22 +115,23 @@ public class FitbitShimAuthorization implements ShimAuthorization {
 				preAuthState);
     }
 
+    /**
+     * Finishes the authorization. The token exchange runs on the shim's
+     * FitbitTokenExchanger, a bounded pool of workers that each have their
+     * own Fitbit client, so exchanges for different users don't queue behind
+     * one another. The calling servlet thread still blocks until the
+     * exchange is done or the timeout passes.
+     */
 	public ExternalAuthorizationToken getAuthorizationToken(
 		final HttpServletRequest httpRequest,
 		final ExternalAuthorizationInformation information) {
-        FitbitShim shim = null;
-        try {
-            shim = (FitbitShim)ShimRegistry.getShim(information.getDomain());
-        }
-        catch(Exception e) {
-            throw new OmhException("Unable to get shim", e);
-        }
-
-        // Save the temporary token data to the credentials cache.
+        // Build the temporary credentials from the callback. The request
+        // can't be used once the servlet thread moves on, so this is done up
+        // front.
         LocalUserDetail localUserDetail = 
             new LocalUserDetail(information.getUsername());
 
-        APIResourceCredentials credentials =
+        final APIResourceCredentials credentials =
             new APIResourceCredentials(
                 information.getUsername(), 
                 httpRequest.getParameter("oauth_token"),
@@ -104,26 +140,51 @@ public class FitbitShimAuthorization implements ShimAuthorization {
         credentials.setTempTokenVerifier(
             httpRequest.getParameter("oauth_verifier"));
 
-        shim.getCredentialsCache().saveResourceCredentials(
-            localUserDetail, credentials);
-
         // Fetch the permanent token.
+        Future<ExternalAuthorizationToken> token =
+            shim.getTokenExchanger().exchange(
+                localUserDetail,
+                credentials,
+                new Callable<ExternalAuthorizationToken>() {
+                    public ExternalAuthorizationToken call() {
+                        // Build the extras with the token secret.
+                        Map<String, Object> extras =
+                            new HashMap<String, Object>();
+                        extras.put(
+                            OAuth1Authorization.KEY_EXTRAS_SECRET, 
+                            credentials.getAccessTokenSecret());
+
+                        return new ExternalAuthorizationToken(
+                            information.getUsername(),
+                            information.getDomain(),
+                            credentials.getAccessToken(), null,
+                            Long.MAX_VALUE, extras);
+                    }
+                });
+
+        // The exchange isn't interrupted on cancel: the HTTP call ignores
+        // interrupts, and the worker cleans up after itself once it returns.
         try {
-            shim.getApiClientService().getTokenCredentials(localUserDetail);
-        } catch (FitbitAPIException e) {
+            return token.get(exchangeTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e) {
+            token.cancel(false);
             throw new OmhException(
-                "Unable to finish authorization with Fitbit", e);
+                "Timed out finishing authorization with Fitbit", e);
+        }
+        catch(InterruptedException e) {
+            token.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new OmhException(
+                "Interrupted finishing authorization with Fitbit", e);
+        }
+        catch(ExecutionException e) {
+            if (e.getCause() instanceof OmhException) {
+                throw (OmhException) e.getCause();
+            }
+            throw new OmhException(
+                "Unable to finish authorization with Fitbit", e.getCause());
         }
-
-        // Build the extras with the token secret.
-        Map<String, Object> extras = new HashMap<String, Object>();
-        extras.put(
-            OAuth1Authorization.KEY_EXTRAS_SECRET, 
-            credentials.getAccessTokenSecret());
-
-        return new ExternalAuthorizationToken(
-            information.getUsername(), information.getDomain(),
-            credentials.getAccessToken(), null, Long.MAX_VALUE, extras);
     }
 
 	public ExternalAuthorizationToken refreshAuthorizationToken(
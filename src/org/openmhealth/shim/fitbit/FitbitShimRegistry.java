@@ -1,10 +1,43 @@
 package org.openmhealth.shim.fitbit;
 
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
 import org.openmhealth.shim.Shim;
 import org.openmhealth.shim.ShimRegistry;
 
-public class FitbitShimRegistry extends ShimRegistry {
-    public Shim getShim() {
-        return new FitbitShim();
+/**
+ * Registers the Fitbit shim when the webapp starts and shuts it down when the
+ * webapp stops.
+ */
+public class FitbitShimRegistry
+    extends ShimRegistry
+    implements ServletContextListener {
+
+    private FitbitShim shim;
+
+    public synchronized Shim getShim() {
+        if (shim == null) {
+            shim = new FitbitShim();
+        }
+        return shim;
+    }
+
+    /**
+     * Shuts down the shim created by this registry, if any.
+     */
+    public synchronized void destroy() {
+        if (shim != null) {
+            shim.shutdown();
+            shim = null;
+        }
+    }
+
+    public void contextInitialized(final ServletContextEvent event) {
+        init();
+    }
+
+    public void contextDestroyed(final ServletContextEvent event) {
+        destroy();
     }
 }
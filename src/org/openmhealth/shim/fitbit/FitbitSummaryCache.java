@@ -0,0 +1,241 @@
+package org.openmhealth.shim.fitbit;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openmhealth.reference.exception.OmhException;
+
+/**
+ * A small, bounded cache of what has already been fetched from Fitbit for an
+ * account, such as a day's activities summary. Every schema backed by the
+ * same endpoint reads from the same summary, so a client asking for several
+ * of them for the same days only costs one API call per day. Entries expire
+ * so that data synced later on still shows up.
+ *
+ * Accounts are keyed by their access token rather than by the DSU user, so a
+ * user who links a different Fitbit account never sees the old account's
+ * data. A request looks its Series up once and then reads it day by day
+ * without locking or allocating anything. Each account also caches the days
+ * it can have data for, which filtered requests use to bound their walk.
+ */
+public class FitbitSummaryCache {
+    /**
+     * The summaries cached for one Fitbit account.
+     */
+    public class Account {
+        private final ConcurrentMap<Object, Series> series =
+            new ConcurrentHashMap<Object, Series>();
+
+        /**
+         * When the newest summary of this account expires.
+         */
+        private volatile long expiresAt;
+
+        private volatile CachedSummary dataWindow;
+
+        private Account(final long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Returns the summaries of one resource.
+         *
+         * @param resource
+         *        Identifies what was fetched. Compared by identity.
+         *
+         * @return The summaries of the resource.
+         */
+        public Series getSeries(final Object resource) {
+            Series result = series.get(resource);
+            if (result == null) {
+                result = new Series(this);
+                Series previous = series.putIfAbsent(resource, result);
+                if (previous != null) {
+                    result = previous;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return The account's data window, or null if it isn't cached or
+         *         has expired.
+         */
+        public FitbitDataWindow getDataWindow() {
+            CachedSummary summary = dataWindow;
+            if (summary == null
+                || System.currentTimeMillis() >= summary.expiresAt) {
+                return null;
+            }
+            return (FitbitDataWindow) summary.value;
+        }
+
+        /**
+         * Caches the account's data window.
+         */
+        public void putDataWindow(final FitbitDataWindow window) {
+            long expiresAt = System.currentTimeMillis() + ttlMillis;
+            dataWindow = new CachedSummary(0, window, expiresAt);
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * The summaries of one resource for one account, by day. Each day has a
+     * fixed slot, so a day can push out the one a whole number of windows
+     * away.
+     */
+    public class Series {
+        private final Account account;
+        private final AtomicReferenceArray<CachedSummary> slots =
+            new AtomicReferenceArray<CachedSummary>(days);
+
+        private Series(final Account account) {
+            this.account = account;
+        }
+
+        /**
+         * Looks up a cached summary.
+         *
+         * @param day
+         *        The day the summary is for, as days since the epoch.
+         *
+         * @return The summary, or null if it isn't cached or has expired.
+         */
+        public Object get(final long day) {
+            CachedSummary summary = slots.get(slotOf(day));
+            if (summary == null
+                || summary.day != day
+                || System.currentTimeMillis() >= summary.expiresAt) {
+                return null;
+            }
+            return summary.value;
+        }
+
+        /**
+         * Caches a summary. See get for the parameters.
+         */
+        public void put(final long day, final Object value) {
+            long expiresAt = System.currentTimeMillis() + ttlMillis;
+            slots.set(slotOf(day), new CachedSummary(day, value, expiresAt));
+            account.expiresAt = expiresAt;
+        }
+
+        private int slotOf(final long day) {
+            int slot = (int) (day % days);
+            return (slot < 0) ? slot + days : slot;
+        }
+    }
+
+    /**
+     * A cached summary, the day it is for and the time it expires. The day
+     * is unused for the data window.
+     */
+    private static class CachedSummary {
+        private final long day;
+        private final Object value;
+        private final long expiresAt;
+
+        public CachedSummary(
+            final long day,
+            final Object value,
+            final long expiresAt) {
+            this.day = day;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxAccounts;
+    private final int days;
+
+    private final ConcurrentMap<String, Account> accounts =
+        new ConcurrentHashMap<String, Account>();
+
+    /**
+     * The earliest time the next sweep for expired accounts should run.
+     */
+    private final AtomicLong nextPurge = new AtomicLong();
+
+    /**
+     * @param ttlMillis
+     *        How long a summary is kept, in milliseconds.
+     *
+     * @param maxAccounts
+     *        The maximum number of accounts with cached summaries. Once it is
+     *        reached, the summaries of new accounts are only kept for the
+     *        request that fetched them.
+     *
+     * @param days
+     *        The number of days kept per account and resource.
+     */
+    public FitbitSummaryCache(
+        final long ttlMillis,
+        final int maxAccounts,
+        final int days) {
+        if (ttlMillis <= 0) {
+            throw new OmhException("The TTL must be positive.");
+        }
+        if (maxAccounts <= 0) {
+            throw new OmhException("The maximum accounts must be positive.");
+        }
+        if (days <= 0) {
+            throw new OmhException("The number of days must be positive.");
+        }
+
+        this.ttlMillis = ttlMillis;
+        this.maxAccounts = maxAccounts;
+        this.days = days;
+    }
+
+    /**
+     * Returns the summaries cached for an account.
+     *
+     * @param accessToken
+     *        The access token of the account.
+     *
+     * @return The account's summaries.
+     */
+    public Account getAccount(final String accessToken) {
+        Account account = accounts.get(accessToken);
+        if (account != null) {
+            return account;
+        }
+
+        long now = System.currentTimeMillis();
+        purgeIfDue(now);
+
+        account = new Account(now + ttlMillis);
+        if (accounts.size() >= maxAccounts) {
+            purge(now);
+            if (accounts.size() >= maxAccounts) {
+                return account;
+            }
+        }
+        Account previous = accounts.putIfAbsent(accessToken, account);
+        return (previous == null) ? account : previous;
+    }
+
+    /**
+     * Sweeps expired accounts at most once per TTL.
+     */
+    private void purgeIfDue(final long now) {
+        long due = nextPurge.get();
+        if (now >= due && nextPurge.compareAndSet(due, now + ttlMillis)) {
+            purge(now);
+        }
+    }
+
+    private void purge(final long now) {
+        Iterator<Account> iterator = accounts.values().iterator();
+        while (iterator.hasNext()) {
+            if (now >= iterator.next().expiresAt) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package org.openmhealth.shim.fitbit;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openmhealth.reference.exception.OmhException;
+
+import com.fitbit.api.FitbitAPIException;
+import com.fitbit.api.client.FitbitApiClientAgent;
+import com.fitbit.api.client.LocalUserDetail;
+import com.fitbit.api.client.service.FitbitAPIClientService;
+import com.fitbit.api.model.APIResourceCredentials;
+
+/**
+ * Exchanges temporary OAuth credentials for permanent ones on a bounded pool
+ * of worker threads. The Fitbit lib serializes token requests on each client
+ * agent, so every worker thread builds its own client when it starts.
+ *
+ * An exchange uses up the one-time verifier from the callback, so one that
+ * finishes after the caller has given up forces the user to start over. New
+ * exchanges are therefore refused, rather than queued, when the backlog is
+ * full or when the workers are not expected to get to them before the
+ * caller's timeout.
+ */
+public class FitbitTokenExchanger {
+    /**
+     * Builds the client for a new worker thread.
+     */
+    public interface ClientFactory {
+        /**
+         * @return A new client that uses the pending store as its
+         *         credentials cache.
+         */
+        public FitbitAPIClientService<FitbitApiClientAgent> newClient();
+    }
+
+    /**
+     * How much each new measurement moves the latency estimate, as the
+     * shift of the divisor. 3 gives the last 8 or so exchanges most weight.
+     */
+    private static final int LATENCY_ESTIMATE_SHIFT = 3;
+
+    private final ThreadPoolExecutor executor;
+    private final FitbitPendingAuthorizationStore pendingStore;
+    private final int threads;
+    private final long timeoutNanos;
+
+    /**
+     * A moving average of how long a worker spends on one exchange.
+     */
+    private final AtomicLong estimatedLatencyNanos;
+
+    /**
+     * The client of the current worker thread.
+     */
+    private final ThreadLocal<FitbitAPIClientService<FitbitApiClientAgent>>
+        workerClient =
+            new ThreadLocal<FitbitAPIClientService<FitbitApiClientAgent>>();
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param clientFactory
+     *        Builds the client for each worker thread, including threads
+     *        started to replace ones that died.
+     *
+     * @param threads
+     *        The number of worker threads.
+     *
+     * @param pendingStore
+     *        The store holding the temporary credentials.
+     *
+     * @param maxBacklog
+     *        The maximum number of exchanges waiting for a worker.
+     *
+     * @param timeoutMillis
+     *        How long callers wait for an exchange, in milliseconds.
+     *
+     * @param expectedLatencyMillis
+     *        How long one exchange is expected to take, in milliseconds,
+     *        until some have been measured.
+     */
+    public FitbitTokenExchanger(
+        final ClientFactory clientFactory,
+        final int threads,
+        final FitbitPendingAuthorizationStore pendingStore,
+        final int maxBacklog,
+        final long timeoutMillis,
+        final long expectedLatencyMillis) {
+        if (clientFactory == null) {
+            throw new OmhException("The client factory is null.");
+        }
+        if (threads <= 0) {
+            throw new OmhException("The number of threads must be positive.");
+        }
+        if (pendingStore == null) {
+            throw new OmhException("The pending store is null.");
+        }
+        if (maxBacklog <= 0) {
+            throw new OmhException("The maximum backlog must be positive.");
+        }
+        if (timeoutMillis <= 0) {
+            throw new OmhException("The timeout must be positive.");
+        }
+        if (expectedLatencyMillis <= 0) {
+            throw new OmhException("The expected latency must be positive.");
+        }
+
+        this.pendingStore = pendingStore;
+        this.threads = threads;
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        estimatedLatencyNanos =
+            new AtomicLong(
+                TimeUnit.MILLISECONDS.toNanos(expectedLatencyMillis));
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor =
+            new ThreadPoolExecutor(
+                threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxBacklog),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final FitbitAPIClientService<FitbitApiClientAgent>
+                            client = clientFactory.newClient();
+                        Thread thread =
+                            new Thread(
+                                new Runnable() {
+                                    public void run() {
+                                        workerClient.set(client);
+                                        runnable.run();
+                                    }
+                                },
+                                "fitbit-token-exchange-"
+                                    + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Starts exchanging the temporary credentials for permanent ones. When
+     * the exchange succeeds the access token and secret are set on the given
+     * credentials and the callback is run on the worker thread to build the
+     * result. The temporary credentials are removed from the pending store
+     * whether or not the exchange succeeds.
+     *
+     * @param localUserDetail
+     *        The user being authorized.
+     *
+     * @param credentials
+     *        The temporary credentials returned by Fitbit.
+     *
+     * @param onExchanged
+     *        Builds the result once the credentials hold the access token.
+     *
+     * @return The pending result.
+     *
+     * @throws OmhException
+     *         The pending store or the backlog is full, or the exchange
+     *         isn't expected to finish before the caller's timeout.
+     */
+    public <T> Future<T> exchange(
+        final LocalUserDetail localUserDetail,
+        final APIResourceCredentials credentials,
+        final Callable<T> onExchanged) {
+        // Everything ahead of this exchange, running or queued, is shared
+        // out over the workers, and then this one has to run as well. This
+        // is only an estimate, and the check races with other submissions,
+        // so the bounded backlog still caps the worst case.
+        long ahead = executor.getActiveCount() + executor.getQueue().size();
+        if ((ahead / threads + 1) * estimatedLatencyNanos.get()
+            > timeoutNanos) {
+            rejectedCount.incrementAndGet();
+            throw new OmhException(
+                "Too many Fitbit authorizations are being finished.");
+        }
+
+        // The exchanger is the only reader of these entries, so each exchange
+        // gets its own key. Two callbacks for the same user, such as a
+        // retried redirect, then can't pick up each other's credentials.
+        final LocalUserDetail exchangeKey =
+            new LocalUserDetail(
+                localUserDetail.getUserId() + ":"
+                + credentials.getTempToken());
+        pendingStore.saveResourceCredentials(exchangeKey, credentials);
+
+        final long submitted = System.nanoTime();
+        final AtomicBoolean started = new AtomicBoolean();
+        FutureTask<T> task =
+            new FutureTask<T>(new Callable<T>() {
+                public T call() throws Exception {
+                    if (! started.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    long runStarted = System.nanoTime();
+                    boolean succeeded = false;
+                    try {
+                        workerClient.get().getTokenCredentials(exchangeKey);
+                        T result = onExchanged.call();
+                        succeeded = true;
+                        return result;
+                    }
+                    catch(FitbitAPIException e) {
+                        throw new OmhException(
+                            "Unable to finish authorization with Fitbit", e);
+                    }
+                    finally {
+                        pendingStore.expireResourceCredentials(exchangeKey);
+                        long finished = System.nanoTime();
+                        estimateLatency(finished - runStarted);
+                        record(succeeded, finished - submitted);
+                    }
+                }
+            }) {
+                // An exchange cancelled while still in the backlog never
+                // runs, so it is cleaned up here instead.
+                protected void done() {
+                    if (isCancelled() && started.compareAndSet(false, true)) {
+                        pendingStore.expireResourceCredentials(exchangeKey);
+                        record(false, System.nanoTime() - submitted);
+                    }
+                }
+            };
+        try {
+            executor.execute(task);
+            return task;
+        }
+        catch(RejectedExecutionException e) {
+            pendingStore.expireResourceCredentials(exchangeKey);
+            rejectedCount.incrementAndGet();
+            throw new OmhException(
+                "Too many Fitbit authorizations are being finished.", e);
+        }
+    }
+
+    /**
+     * Stops accepting exchanges. Those already submitted still run, and the
+     * worker threads exit once they are done.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return The number of exchanges waiting for a worker.
+     */
+    public int getBacklog() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return The number of exchanges currently talking to Fitbit.
+     */
+    public int getInFlightCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return The number of exchanges that succeeded.
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * @return The number of exchanges that failed.
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return The number of exchanges refused because the backlog was full
+     *         or they weren't expected to finish in time.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return The mean time from submission to completion of the finished
+     *         exchanges, in milliseconds.
+     */
+    public double getMeanLatencyMillis() {
+        long finished = completedCount.get() + failedCount.get();
+        if (finished == 0) {
+            return 0;
+        }
+        return totalLatencyNanos.get() / (double) finished / 1000000.0;
+    }
+
+    /**
+     * @return The longest time from submission to completion of any
+     *         exchange, in milliseconds.
+     */
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @return The current estimate of how long a worker spends on one
+     *         exchange, in milliseconds.
+     */
+    public double getEstimatedLatencyMillis() {
+        return estimatedLatencyNanos.get() / 1000000.0;
+    }
+
+    private void estimateLatency(final long latencyNanos) {
+        long estimate;
+        long next;
+        do {
+            estimate = estimatedLatencyNanos.get();
+            next =
+                estimate
+                + ((latencyNanos - estimate) >> LATENCY_ESTIMATE_SHIFT);
+        } while (! estimatedLatencyNanos.compareAndSet(estimate, next));
+    }
+
+    private void record(final boolean succeeded, final long latencyNanos) {
+        if (succeeded) {
+            completedCount.incrementAndGet();
+        } else {
+            failedCount.incrementAndGet();
+        }
+        totalLatencyNanos.addAndGet(latencyNanos);
+
+        long max = maxLatencyNanos.get();
+        while (latencyNanos > max
+            && ! maxLatencyNanos.compareAndSet(max, latencyNanos)) {
+            max = maxLatencyNanos.get();
+        }
+    }
+}